@@ -0,0 +1,172 @@
+package com.learning.rocketmq.phase3;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.client.apis.message.MessageView;
+import org.apache.rocketmq.client.apis.producer.TransactionChecker;
+import org.apache.rocketmq.client.apis.producer.TransactionResolution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Broker check-back handler resolving transactions with batched store lookups
+ *
+ * Why:
+ * - The broker checks every unresolved half message; one store query per check
+ *   floods the database after a producer restart
+ *
+ * How:
+ * - check() never blocks: it answers COMMIT/ROLLBACK from a cache of resolved states
+ * - On a cache miss it queues the transaction id and answers UNKNOWN, so the broker checks
+ *   again later and finds the state cached by then
+ * - A batcher thread collects queued ids for up to batchWindow (or batchSize ids)
+ *   and resolves them with one {@link TransactionStateStore#findStates} call
+ * - Ids already queued are not queued again; a cached state is dropped once answered
+ *   and the cache is bounded (oldest dropped first)
+ *
+ * Notes:
+ * - The client calls check() one message at a time on a single thread, so check() must
+ *   not wait for a lookup; a blocking check() caps check-backs at one batch window each
+ * - The price: a cache miss always answers UNKNOWN, so every orphaned half message takes
+ *   at least two broker checks. With N producer instances in the group it can take up to
+ *   N+1 check intervals, because each instance only caches its own lookups
+ * - Orphans resolve only if the store answers ROLLBACK for ids that can no longer commit,
+ *   see {@link TransactionStateStore#findStates}
+ */
+public class BatchingTransactionChecker implements TransactionChecker, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BatchingTransactionChecker.class);
+
+    private final TransactionStateStore store;
+    private final String transactionIdProperty;
+    private final int batchSize;
+    private final long batchWindowMs;
+
+    private final BlockingQueue<String> lookupQueue = new LinkedBlockingQueue<>();
+    private final Set<String> queuedIds = ConcurrentHashMap.newKeySet();
+    // COMMIT/ROLLBACK states found by the batcher, waiting for the next check of their transaction
+    private final Map<String, TransactionResolution> resolvedStates;
+    private final Thread batcher;
+    private volatile boolean running = true;
+
+    /**
+     * @param store store answering the lookups
+     * @param transactionIdProperty message property holding the transaction id
+     * @param batchSize maximum ids per lookup
+     * @param batchWindow how long to collect ids before a lookup
+     * @param maxCachedStates maximum resolved states kept until their next check
+     */
+    public BatchingTransactionChecker(TransactionStateStore store, String transactionIdProperty,
+            int batchSize, Duration batchWindow, int maxCachedStates) {
+        if (batchSize <= 0 || maxCachedStates <= 0) {
+            throw new IllegalArgumentException("batchSize and maxCachedStates must be positive");
+        }
+        this.store = store;
+        this.transactionIdProperty = transactionIdProperty;
+        this.batchSize = batchSize;
+        this.batchWindowMs = batchWindow.toMillis();
+        this.resolvedStates = Collections.synchronizedMap(
+            new LinkedHashMap<String, TransactionResolution>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TransactionResolution> eldest) {
+                    return size() > maxCachedStates;
+                }
+            });
+        this.batcher = new Thread(this::batchLoop, "transaction-check-batcher");
+        this.batcher.setDaemon(true);
+        this.batcher.start();
+    }
+
+    @Override
+    public TransactionResolution check(MessageView messageView) {
+        String transactionId = messageView.getProperties().get(transactionIdProperty);
+        if (transactionId == null) {
+            // Not ours to decide, e.g. sent by a producer without a transaction id
+            logger.warn("Check-back for message {} without {} property, answering UNKNOWN",
+                messageView.getMessageId(), transactionIdProperty);
+            return TransactionResolution.UNKNOWN;
+        }
+        TransactionResolution resolution = resolvedStates.remove(transactionId);
+        if (resolution != null) {
+            logger.info("Check-back resolved transaction {} -> {}", transactionId, resolution);
+            return resolution;
+        }
+        if (running && queuedIds.add(transactionId)) {
+            lookupQueue.offer(transactionId);
+        }
+        // Looked up in the background; the broker checks again later
+        return TransactionResolution.UNKNOWN;
+    }
+
+    private void batchLoop() {
+        List<String> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                String first = lookupQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Collect more ids until the window closes or the batch is full
+                long deadline = System.currentTimeMillis() + batchWindowMs;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    String next = lookupQueue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    lookupQueue.drainTo(batch, batchSize - batch.size());
+                }
+                resolve(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void resolve(List<String> transactionIds) {
+        Map<String, TransactionResolution> states;
+        try {
+            states = store.findStates(transactionIds);
+        } catch (RuntimeException e) {
+            // Ids are queued again by their next check
+            logger.error("Transaction state lookup of {} ids failed", transactionIds.size(), e);
+            queuedIds.removeAll(transactionIds);
+            return;
+        }
+        logger.debug("Resolved {} transactions with one lookup", transactionIds.size());
+        for (String transactionId : transactionIds) {
+            TransactionResolution resolution = states.get(transactionId);
+            if (resolution != null && resolution != TransactionResolution.UNKNOWN) {
+                resolvedStates.put(transactionId, resolution);
+            }
+            // Removed after caching, so a concurrent check either finds the state or queues the id again
+            queuedIds.remove(transactionId);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        batcher.interrupt();
+        lookupQueue.clear();
+        queuedIds.clear();
+        resolvedStates.clear();
+    }
+}
@@ -120,6 +120,9 @@ public class ConsumerBasicsExample {
      * Use cases: - When you need precise control over when to consume messages - Batch processing
      * scenarios - Integration with stream processing frameworks - When you need to implement custom
      * backpressure logic
+     * <p>
+     * Acks and lease renewals go through {@link MessageLeaseManager}, so the worker never waits
+     * for an ack RPC and slow messages are not redelivered while still being processed.
      */
     private static void demonstratePullConsumer()
             throws ClientException, InterruptedException, IOException {
@@ -136,40 +139,49 @@ public class ConsumerBasicsExample {
                 // when the queue is empty, the consumer will wait for the duration to receive messages, if the duration is reached, the consumer will return null.
                 .setAwaitDuration(Duration.ofSeconds(30)).build();
 
-        while (true) {
-            try {
-                // maxMessageNums:5            
-                // the time of invisible duration is 30 seconds. If ack is called after the duration, there are will be an error.
-                // So the below code means that this consumer needs to process the message within 30 seconds, otherwise the message will be retried by the broker and consumed by other consumers.
-                List<MessageView> messages = consumer.receive(1, Duration.ofSeconds(30));
-                logger.info("Batch Pulled messages: {}", messages.size());
-                if (messages == null || messages.isEmpty()) {
-                    logger.info("No messages available, waiting...");
-                    Thread.sleep(1000);
-                    continue;
-                }
-                for (MessageView messageView : messages) {
-                    // process the message, and sleep for 10 seconds to simulate the message processing time
-                    logger.info("Processing message: {}", messageView.getMessageId());
-                    System.out.println(RocketMQConfig.printMessageView(messageView));
-                    Thread.sleep(10000); // 10 seconds
-                    try {
+        // Tracks in-flight messages: acks are sent off the worker thread, and messages that
+        // take longer than the invisible duration get their lease renewed before it expires
+        // Processing below (20s) outlasts the 15s lease, so the lease gets renewed at ~10s
+        MessageLeaseManager leaseManager = MessageLeaseManager.newBuilder(consumer)
+                .setInvisibleDuration(Duration.ofSeconds(15))
+                .setRenewAhead(Duration.ofSeconds(5))
+                .build();
+
+        try {
+            while (true) {
+                try {
+                    // maxMessageNums:5            
+                    // the time of invisible duration is 15 seconds. If ack is called after the duration, there are will be an error.
+                    // Without renewal, the consumer needs to process the message within 15 seconds, otherwise the message will be retried by the broker and consumed by other consumers.
+                    // The lease manager renews it with changeInvisibleDuration while it is still being processed.
+                    List<MessageView> messages = consumer.receive(1, leaseManager.getInvisibleDuration());
+                    logger.info("Batch Pulled messages: {}", messages.size());
+                    if (messages == null || messages.isEmpty()) {
+                        logger.info("No messages available, waiting...");
+                        Thread.sleep(1000);
+                        continue;
+                    }
+                    leaseManager.trackAll(messages);
+                    for (MessageView messageView : messages) {
+                        // process the message, and sleep for 20 seconds to simulate slow processing (longer than the lease)
+                        logger.info("Processing message: {}", messageView.getMessageId());
+                        System.out.println(RocketMQConfig.printMessageView(messageView));
+                        Thread.sleep(20000); // 20 seconds
                         // tell the broker that the message has been processed, otherwise the message will be retried by the broker and consumed by other consumers.
+                        // Non-blocking: the ack RPC is sent by the lease manager thread.
                         logger.info("Process Done, Acknowledging message");
-                        consumer.ack(messageView);                        
-                    } catch (ClientException e) {
-                        logger.error("Failed to acknowledge message: {}",
-                                messageView.getMessageId(), e);
-                    }
-                }             
-            }
+                        leaseManager.ack(messageView);
+                    }             
+                }
 
-            catch (ClientException e) {
-                logger.error("Error receiving message", e);
-                Thread.sleep(1000); // Wait before retry
+                catch (ClientException e) {
+                    logger.error("Error receiving message", e);
+                    Thread.sleep(1000); // Wait before retry
+                }
             }
+        } finally {
+            leaseManager.close();
         }
-
     }
 
     /**
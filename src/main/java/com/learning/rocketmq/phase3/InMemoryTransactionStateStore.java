@@ -0,0 +1,36 @@
+package com.learning.rocketmq.phase3;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.rocketmq.client.apis.producer.TransactionResolution;
+
+/**
+ * In-memory {@link TransactionStateStore} for the examples. A real service uses its database.
+ */
+public class InMemoryTransactionStateStore implements TransactionStateStore {
+    private final Map<String, TransactionResolution> states = new ConcurrentHashMap<>();
+
+    /**
+     * Record the outcome of a local transaction.
+     *
+     * @param transactionId transaction id
+     * @param resolution COMMIT if the local transaction committed, ROLLBACK if it failed
+     */
+    public void record(String transactionId, TransactionResolution resolution) {
+        states.put(transactionId, resolution);
+    }
+
+    @Override
+    public Map<String, TransactionResolution> findStates(Collection<String> transactionIds) {
+        Map<String, TransactionResolution> result = new HashMap<>();
+        for (String transactionId : transactionIds) {
+            TransactionResolution resolution = states.get(transactionId);
+            if (resolution != null) {
+                result.put(transactionId, resolution);
+            }
+        }
+        return result;
+    }
+}
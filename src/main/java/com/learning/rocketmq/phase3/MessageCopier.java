@@ -0,0 +1,45 @@
+package com.learning.rocketmq.phase3;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import org.apache.rocketmq.client.apis.ClientServiceProvider;
+import org.apache.rocketmq.client.apis.message.Message;
+import org.apache.rocketmq.client.apis.message.MessageBuilder;
+
+/**
+ * Copies messages into a new builder, so a field can be changed (messages are immutable).
+ */
+final class MessageCopier {
+
+    private MessageCopier() {
+    }
+
+    /**
+     * Copy topic, tag, keys, message group, properties and body. The delivery timestamp
+     * is not copied, because it cannot be combined with a message group.
+     *
+     * @param provider client service provider
+     * @param message message to copy
+     * @return builder pre-filled with the message fields
+     */
+    static MessageBuilder toBuilder(ClientServiceProvider provider, Message message) {
+        ByteBuffer bodyBuffer = message.getBody().duplicate();
+        byte[] bodyBytes = new byte[bodyBuffer.remaining()];
+        bodyBuffer.get(bodyBytes);
+
+        MessageBuilder builder = provider.newMessageBuilder()
+            .setTopic(message.getTopic())
+            .setBody(bodyBytes);
+        message.getTag().ifPresent(builder::setTag);
+        message.getMessageGroup().ifPresent(builder::setMessageGroup);
+        Collection<String> keys = message.getKeys();
+        if (!keys.isEmpty()) {
+            builder.setKeys(keys.toArray(new String[0]));
+        }
+        for (Map.Entry<String, String> property : message.getProperties().entrySet()) {
+            builder.addProperty(property.getKey(), property.getValue());
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,350 @@
+package com.learning.rocketmq.phase3;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.rocketmq.client.apis.ClientServiceProvider;
+import org.apache.rocketmq.client.apis.message.Message;
+import org.apache.rocketmq.client.apis.producer.Producer;
+import org.apache.rocketmq.client.apis.producer.SendReceipt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Producer-side message group partitioner for FIFO topics
+ *
+ * Why:
+ * - One message group per entity creates too many groups on the broker
+ * - One global message group serializes every message of the topic
+ * - Mapping business keys onto a fixed number of groups gives ordering per key
+ *   while keeping the FIFO parallelism tunable
+ *
+ * How:
+ * - Business key is taken from the body field (e.g. orderId) or the first message key
+ * - Keys are placed on a consistent hash ring with virtual nodes per group
+ * - Changing the group count only moves about 1/N of the keys to other groups
+ * - Send counters are kept per group so the group count can be tuned against the broker
+ *
+ * Ordering:
+ * - The broker keeps the order of a group only for messages one producer sends serially
+ * - {@link #sendAsync} therefore starts a send only after the previous send of the same
+ *   group has completed; different groups are still sent in parallel
+ * - A failed send does not hold back the following ones, so a message resent by the caller
+ *   after a failure is out of order
+ * - Messages from {@link #assign} carry no such guarantee if the caller sends them concurrently
+ */
+public class MessageGroupPartitioner {
+    private static final Logger logger = LoggerFactory.getLogger(MessageGroupPartitioner.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public static final String DEFAULT_KEY_FIELD = "orderId";
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final String groupPrefix;
+    private final int virtualNodes;
+    private final Function<Message, String> keyExtractor;
+    private final ClientServiceProvider provider;
+
+    // Ring is rebuilt off to the side and swapped in, so lookups never lock
+    private volatile NavigableMap<Long, String> ring;
+    private volatile int groupCount;
+
+    private final Map<String, GroupMetrics> metrics = new ConcurrentHashMap<>();
+    // Last send of each group; the next send of the group is chained onto it
+    private final Map<String, CompletableFuture<SendReceipt>> lastSends = new ConcurrentHashMap<>();
+
+    /**
+     * Create a partitioner that reads the business key from the "orderId" body field,
+     * falling back to the first message key.
+     *
+     * @param groupPrefix prefix of the message group names, e.g. "order"
+     * @param groupCount number of message groups to spread keys over
+     */
+    public MessageGroupPartitioner(String groupPrefix, int groupCount) {
+        this(groupPrefix, groupCount, DEFAULT_VIRTUAL_NODES, bodyFieldOrFirstKey(DEFAULT_KEY_FIELD));
+    }
+
+    /**
+     * Create a partitioner with a custom key extractor.
+     *
+     * @param groupPrefix prefix of the message group names
+     * @param groupCount number of message groups to spread keys over
+     * @param virtualNodes virtual nodes per group on the hash ring, more nodes give a more even spread
+     * @param keyExtractor returns the business key of a message, or null if it has none
+     */
+    public MessageGroupPartitioner(String groupPrefix, int groupCount, int virtualNodes,
+            Function<Message, String> keyExtractor) {
+        if (groupPrefix == null || groupPrefix.isEmpty()) {
+            throw new IllegalArgumentException("groupPrefix must not be empty");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        this.groupPrefix = groupPrefix;
+        this.virtualNodes = virtualNodes;
+        this.keyExtractor = keyExtractor;
+        this.provider = ClientServiceProvider.loadService();
+        setGroupCount(groupCount);
+    }
+
+    /**
+     * Change the number of message groups.
+     *
+     * Only keys whose ring position falls into the added/removed groups move,
+     * so in-flight ordering is disturbed for about 1/N of the keys.
+     *
+     * @param newGroupCount new number of message groups
+     */
+    public synchronized void setGroupCount(int newGroupCount) {
+        if (newGroupCount <= 0) {
+            throw new IllegalArgumentException("groupCount must be positive");
+        }
+        TreeMap<Long, String> newRing = new TreeMap<>();
+        Set<String> groups = new HashSet<>();
+        for (int i = 0; i < newGroupCount; i++) {
+            String group = groupName(i);
+            groups.add(group);
+            for (int v = 0; v < virtualNodes; v++) {
+                newRing.put(hash(group + "#" + v), group);
+            }
+        }
+        int oldGroupCount = this.groupCount;
+        this.ring = newRing;
+        this.groupCount = newGroupCount;
+        // Drop metrics and send chains of groups that no longer exist
+        metrics.keySet().retainAll(groups);
+        lastSends.keySet().retainAll(groups);
+        if (oldGroupCount != 0) {
+            logger.info("Message groups rebalanced: {} -> {}", oldGroupCount, newGroupCount);
+        }
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Select the message group of a business key.
+     *
+     * @param businessKey business key, e.g. an order id
+     * @return message group name
+     */
+    public String selectGroup(String businessKey) {
+        if (businessKey == null) {
+            throw new IllegalArgumentException("businessKey must not be null");
+        }
+        NavigableMap<Long, String> current = ring;
+        Map.Entry<Long, String> entry = current.ceilingEntry(hash(businessKey));
+        if (entry == null) {
+            entry = current.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Return a copy of the message with its message group assigned.
+     *
+     * Messages without a business key are returned unchanged (sent without a group).
+     *
+     * @param message message to assign
+     * @return message with message group set
+     */
+    public Message assign(Message message) {
+        String businessKey = keyExtractor.apply(message);
+        if (businessKey == null) {
+            logger.debug("No business key found, sending without message group. Keys: {}", message.getKeys());
+            return message;
+        }
+        return MessageCopier.toBuilder(provider, message)
+            .setMessageGroup(selectGroup(businessKey))
+            .build();
+    }
+
+    /**
+     * Assign a message group and send asynchronously, recording per-group metrics.
+     *
+     * The send starts once the previous send of the same group has completed, so messages
+     * of one group reach the broker in call order.
+     *
+     * @param producer producer bound to a FIFO topic
+     * @param message message to send
+     * @return future of the send receipt
+     */
+    public CompletableFuture<SendReceipt> sendAsync(Producer producer, Message message) {
+        Message assigned = assign(message);
+        String group = assigned.getMessageGroup().orElse(null);
+        if (group == null) {
+            return producer.sendAsync(assigned);
+        }
+        GroupMetrics groupMetrics = metrics.computeIfAbsent(group, g -> new GroupMetrics());
+        groupMetrics.sent.increment();
+        // compute() is atomic per group, so concurrent callers are chained in call order
+        CompletableFuture<SendReceipt> send = lastSends.compute(group, (g, previous) -> previous == null
+            ? producer.sendAsync(assigned)
+            : previous.handle((receipt, throwable) -> null)
+                .thenCompose(ignored -> producer.sendAsync(assigned)));
+        return send.whenComplete((receipt, throwable) -> {
+            if (throwable != null) {
+                groupMetrics.failed.increment();
+            } else {
+                groupMetrics.succeeded.increment();
+            }
+        });
+    }
+
+    /**
+     * Take a metrics snapshot per message group.
+     *
+     * Rates are computed since the previous snapshot call.
+     *
+     * @return group name to stats, ordered by group name
+     */
+    public synchronized Map<String, GroupStats> snapshot() {
+        long now = System.nanoTime();
+        Map<String, GroupStats> result = new TreeMap<>();
+        for (Map.Entry<String, GroupMetrics> entry : metrics.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot(now));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Log the current per-group send rates.
+     */
+    public void logMetrics() {
+        for (Map.Entry<String, GroupStats> entry : snapshot().entrySet()) {
+            logger.info("  {} -> {}", entry.getKey(), entry.getValue());
+        }
+    }
+
+    private String groupName(int index) {
+        return groupPrefix + "-" + index;
+    }
+
+    /**
+     * Key extractor reading a top-level JSON field of the body, falling back to the first message key.
+     *
+     * @param field JSON field name, e.g. "orderId"
+     * @return key extractor
+     */
+    public static Function<Message, String> bodyFieldOrFirstKey(String field) {
+        return message -> {
+            String key = readBodyField(message, field);
+            if (key != null) {
+                return key;
+            }
+            Iterator<String> keys = message.getKeys().iterator();
+            return keys.hasNext() ? keys.next() : null;
+        };
+    }
+
+    /**
+     * Stream-parse the body up to the field, without copying the body or building a tree.
+     */
+    private static String readBodyField(Message message, String field) {
+        ByteBufferBackedInputStream body = new ByteBufferBackedInputStream(message.getBody().duplicate());
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals(name)) {
+                    // Objects and arrays would all map to "" and pile into one group
+                    return value.isScalarValue() && value != JsonToken.VALUE_NULL ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (IOException e) {
+            // Body is not JSON
+            return null;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a with a final mix, good enough spread for ring positions.
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class GroupMetrics {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private long lastSent;
+        private long lastNanos = System.nanoTime();
+
+        private GroupStats snapshot(long now) {
+            long totalSent = sent.sum();
+            double seconds = (now - lastNanos) / 1_000_000_000.0;
+            double rate = seconds > 0 ? (totalSent - lastSent) / seconds : 0;
+            lastSent = totalSent;
+            lastNanos = now;
+            return new GroupStats(totalSent, succeeded.sum(), failed.sum(), rate);
+        }
+    }
+
+    /**
+     * Send counters of one message group.
+     */
+    public static class GroupStats {
+        private final long sent;
+        private final long succeeded;
+        private final long failed;
+        private final double sendRatePerSecond;
+
+        GroupStats(long sent, long succeeded, long failed, double sendRatePerSecond) {
+            this.sent = sent;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.sendRatePerSecond = sendRatePerSecond;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public double getSendRatePerSecond() {
+            return sendRatePerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d, succeeded=%d, failed=%d, rate=%.1f msg/s",
+                sent, succeeded, failed, sendRatePerSecond);
+        }
+    }
+}
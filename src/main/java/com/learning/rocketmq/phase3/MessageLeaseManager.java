@@ -0,0 +1,392 @@
+package com.learning.rocketmq.phase3;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.rocketmq.client.apis.consumer.SimpleConsumer;
+import org.apache.rocketmq.client.apis.message.MessageView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lease manager for SimpleConsumer in-flight messages
+ *
+ * Why:
+ * - consumer.ack() per message blocks the worker thread for one RPC
+ * - A message that takes longer than its invisible duration is redelivered
+ *   and processed twice
+ *
+ * How:
+ * - Workers call track() after receive and ack() when done; ack() only enqueues
+ * - One manager thread drains the ack queue every flush interval and issues ackAsync
+ * - The same thread renews leases close to expiry with changeInvisibleDurationAsync,
+ *   in batches of at most batchSize per flush
+ * - All lease state is only changed on the manager thread; RPC callbacks hop back onto it
+ *
+ * Notes:
+ * - A renewal changes the receipt handle, so an ack requested while a renewal
+ *   is in flight waits until the renewal completes
+ * - Renewals stop after maxRenewals, so a stuck message is eventually redelivered;
+ *   this only stops renewing, acks are always sent
+ * - close() stops renewing, lets running renewals settle, sends the remaining acks
+ *   and waits for their responses
+ */
+public class MessageLeaseManager implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MessageLeaseManager.class);
+    private static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private final SimpleConsumer consumer;
+    private final Duration invisibleDuration;
+    private final long renewAheadMs;
+    private final int maxRenewals;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Queue<MessageView> ackRequests = new ConcurrentLinkedQueue<>();
+    // RPCs not answered yet, awaited by close()
+    private final Set<CompletableFuture<Void>> pendingAcks = ConcurrentHashMap.newKeySet();
+    private final Set<CompletableFuture<Void>> pendingRenewals = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Only touched on the manager thread: no new renewals once closing
+    private boolean closing;
+
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder ackFailures = new LongAdder();
+    private final LongAdder renewed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    private MessageLeaseManager(Builder builder) {
+        this.consumer = builder.consumer;
+        this.invisibleDuration = builder.invisibleDuration;
+        this.renewAheadMs = builder.renewAhead.toMillis();
+        this.maxRenewals = builder.maxRenewals;
+        this.batchSize = builder.batchSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-lease-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long flushIntervalMs = builder.flushInterval.toMillis();
+        executor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static Builder newBuilder(SimpleConsumer consumer) {
+        return new Builder(consumer);
+    }
+
+    /**
+     * @return invisible duration to pass to consumer.receive(), also used for renewals
+     */
+    public Duration getInvisibleDuration() {
+        return invisibleDuration;
+    }
+
+    /**
+     * Start tracking the lease of a received message. Call right after receive().
+     *
+     * @param messageView received message
+     */
+    public void track(MessageView messageView) {
+        // Lease starts at receive; tracking slightly later only makes the estimate conservative
+        long expiresAtMs = System.currentTimeMillis() + invisibleDuration.toMillis();
+        leases.put(key(messageView), new Lease(messageView, expiresAtMs));
+    }
+
+    /**
+     * Start tracking the leases of a received batch.
+     *
+     * @param messageViews received messages
+     */
+    public void trackAll(List<MessageView> messageViews) {
+        for (MessageView messageView : messageViews) {
+            track(messageView);
+        }
+    }
+
+    /**
+     * Acknowledge a processed message. Returns immediately; the ack is sent by the manager thread.
+     *
+     * @param messageView processed message; acked even if it was never tracked or its renewals ran out
+     */
+    public void ack(MessageView messageView) {
+        ackRequests.offer(messageView);
+    }
+
+    /**
+     * @return number of tracked messages not acknowledged yet
+     */
+    public int getInflightCount() {
+        return leases.size();
+    }
+
+    /**
+     * Log ack and renewal counters.
+     */
+    public void logMetrics() {
+        logger.info("Lease manager: inflight={}, acked={}, ackFailures={}, renewed={}, expired={}",
+            leases.size(), acked.sum(), ackFailures.sum(), renewed.sum(), expired.sum());
+    }
+
+    /**
+     * Runs on the manager thread.
+     */
+    private void flush() {
+        try {
+            sendAcks(true);
+            renewLeases();
+        } catch (Exception e) {
+            logger.error("Error flushing message leases", e);
+        }
+    }
+
+    /**
+     * @param deferWhileRenewing keep acks of messages being renewed for the next round
+     */
+    private void sendAcks(boolean deferWhileRenewing) {
+        List<MessageView> deferred = new ArrayList<>();
+        MessageView messageView;
+        while ((messageView = ackRequests.poll()) != null) {
+            String messageKey = key(messageView);
+            // No lease: never tracked or renewals given up. The ack is still sent.
+            Lease lease = leases.get(messageKey);
+            if (deferWhileRenewing && lease != null && lease.renewing) {
+                // Receipt handle is about to change, ack with the new one next round
+                deferred.add(messageView);
+                continue;
+            }
+            leases.remove(messageKey);
+            track(pendingAcks, consumer.ackAsync(messageView).whenComplete((v, throwable) -> {
+                if (throwable != null) {
+                    // Message will be redelivered after its invisible duration
+                    ackFailures.increment();
+                    logger.error("Failed to acknowledge message: {}", messageKey, throwable);
+                } else {
+                    acked.increment();
+                }
+            }));
+        }
+        ackRequests.addAll(deferred);
+    }
+
+    private void renewLeases() {
+        if (closing) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int renewals = 0;
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            if (lease.renewing || lease.expiresAtMs - now > renewAheadMs) {
+                continue;
+            }
+            if (lease.expiresAtMs <= now || lease.renewals >= maxRenewals) {
+                // Too late or too many renewals: stop renewing. An ack before expiry still goes out,
+                // otherwise the broker redelivers
+                leases.remove(entry.getKey());
+                expired.increment();
+                logger.warn("Stopped renewing message {} after {} renewals, it is redelivered unless acked in time",
+                    entry.getKey(), lease.renewals);
+                continue;
+            }
+            if (renewals++ >= batchSize) {
+                // Rest goes in the next flush
+                break;
+            }
+            renew(entry.getKey(), lease, now);
+        }
+    }
+
+    private void renew(String messageKey, Lease lease, long now) {
+        lease.renewing = true;
+        // Completes once the callback below is queued on the manager thread
+        track(pendingRenewals, consumer.changeInvisibleDurationAsync(lease.messageView, invisibleDuration)
+            .whenComplete((v, throwable) -> runOnManager(() -> {
+                lease.renewing = false;
+                if (throwable != null) {
+                    // Retried by the next flush while the old lease is still valid
+                    logger.warn("Failed to renew lease of message {}", messageKey, throwable);
+                    return;
+                }
+                lease.expiresAtMs = now + invisibleDuration.toMillis();
+                lease.renewals++;
+                renewed.increment();
+            })));
+    }
+
+    private static void track(Set<CompletableFuture<Void>> pending, CompletableFuture<Void> future) {
+        pending.add(future);
+        future.whenComplete((v, throwable) -> pending.remove(future));
+    }
+
+    private void runOnManager(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Manager closed
+        }
+    }
+
+    /**
+     * Send the pending acks, wait for their responses and stop. Leases of messages not acked
+     * are left to expire. Calling close() again has no effect.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+        try {
+            // Set on the manager thread, so no renewal is being issued once this returns
+            awaitTask(executor.submit(() -> closing = true), deadline);
+            // Deferred acks need the receipt handle of the running renewals
+            if (!awaitAll(pendingRenewals, deadline)) {
+                logger.warn("Timed out waiting for lease renewals, acking with the current receipt handles");
+            }
+            // Queued behind the renewal callbacks; a renewal still running by now does not hold its ack back
+            awaitTask(executor.submit(() -> sendAcks(false)), deadline);
+            if (!awaitAll(pendingAcks, deadline)) {
+                logger.warn("Timed out waiting for {} ack responses", pendingAcks.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        logMetrics();
+    }
+
+    private static void awaitTask(Future<?> task, long deadline) throws InterruptedException {
+        try {
+            task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            logger.error("Error closing message lease manager", e.getCause());
+        } catch (TimeoutException e) {
+            logger.warn("Timed out waiting for message lease manager");
+        }
+    }
+
+    /**
+     * @return false if the futures did not complete before the deadline
+     */
+    private static boolean awaitAll(Collection<CompletableFuture<Void>> futures, long deadline)
+            throws InterruptedException {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            // Failures are counted and logged by the callbacks
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    private static String key(MessageView messageView) {
+        return messageView.getMessageId().toString();
+    }
+
+    /**
+     * Lease of one in-flight message. Fields are only written on the manager thread,
+     * except the initial values.
+     */
+    private static class Lease {
+        private final MessageView messageView;
+        private volatile long expiresAtMs;
+        private volatile boolean renewing;
+        private int renewals;
+
+        Lease(MessageView messageView, long expiresAtMs) {
+            this.messageView = messageView;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    /**
+     * Builder of {@link MessageLeaseManager}.
+     */
+    public static class Builder {
+        private final SimpleConsumer consumer;
+        private Duration invisibleDuration = Duration.ofSeconds(30);
+        private Duration renewAhead = Duration.ofSeconds(10);
+        private Duration flushInterval = Duration.ofMillis(100);
+        private int maxRenewals = 10;
+        private int batchSize = 64;
+
+        private Builder(SimpleConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        /**
+         * Invisible duration of received messages and of each renewal. Default 30s.
+         */
+        public Builder setInvisibleDuration(Duration invisibleDuration) {
+            this.invisibleDuration = invisibleDuration;
+            return this;
+        }
+
+        /**
+         * Renew a lease when less than this is left. Default 10s.
+         */
+        public Builder setRenewAhead(Duration renewAhead) {
+            this.renewAhead = renewAhead;
+            return this;
+        }
+
+        /**
+         * How often acks are sent and leases checked. Default 100ms.
+         */
+        public Builder setFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        /**
+         * Maximum renewals per message before it is left to be redelivered. Default 10.
+         */
+        public Builder setMaxRenewals(int maxRenewals) {
+            this.maxRenewals = maxRenewals;
+            return this;
+        }
+
+        /**
+         * Maximum renewals issued per flush. Default 64.
+         */
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public MessageLeaseManager build() {
+            if (consumer == null) {
+                throw new IllegalArgumentException("consumer must not be null");
+            }
+            if (renewAhead.compareTo(invisibleDuration) >= 0) {
+                throw new IllegalArgumentException("renewAhead must be shorter than invisibleDuration");
+            }
+            if (flushInterval.isZero() || flushInterval.isNegative() || maxRenewals < 0 || batchSize <= 0) {
+                throw new IllegalArgumentException("flushInterval and batchSize must be positive, maxRenewals not negative");
+            }
+            return new MessageLeaseManager(this);
+        }
+    }
+}
@@ -23,10 +23,14 @@ import org.slf4j.LoggerFactory;
  * 4. Send one-way messages
  * 5. Handle send results and exceptions
  * 6. Message keys and properties
+ * 7. Message group partitioning for FIFO topics
  */
 public class ProducerBasicsExample {
     private static final Logger logger = LoggerFactory.getLogger(ProducerBasicsExample.class);
     private static final String TOPIC = RocketMQConfig.getDefaultTopic();
+    // Message groups need a FIFO topic, e.g.:
+    // docker exec -it rmqbroker sh mqadmin updatetopic -t FifoTopic -c DefaultCluster -a +message.type=FIFO
+    private static final String FIFO_TOPIC = "FifoTopic";
 
     public static void main(String[] args) {
         Producer producer = null;
@@ -55,6 +59,12 @@ public class ProducerBasicsExample {
             // 6. Demonstrate message keys and properties
             demonstrateMessageKeysAndProperties(producer);
             
+            // Wait a bit between examples
+            Thread.sleep(2000);
+            
+            // 7. Demonstrate message group partitioning
+            demonstrateMessageGroupPartitioning(producer);
+            
             // Wait a bit before closing
             Thread.sleep(3000);
             
@@ -288,5 +298,65 @@ public class ProducerBasicsExample {
             logger.error("✗ Failed to send message with keys and properties", e);
         }
     }
-}
 
+    /**
+     * 7. Message group partitioning for FIFO topics
+     * 
+     * Message Group:
+     * - Messages of the same group are consumed in order
+     * - Requires a FIFO topic (see FIFO_TOPIC); a NORMAL topic like TestTopic rejects
+     *   or ignores message groups
+     * - One group per order creates too many groups
+     * - One global group serializes every message
+     * 
+     * Partitioner:
+     * - Maps the business key (orderId in the body, or the first key) onto N groups
+     * - Consistent hashing: changing N only moves about 1/N of the keys
+     * - Per-group send rates help tuning N against the broker
+     * - Order holds only for serial sends: sendAsync chains the sends of one group,
+     *   while different groups are sent in parallel
+     */
+    private static void demonstrateMessageGroupPartitioning(Producer producer) throws InterruptedException {
+        logger.info("\n=== 7. Demonstrating Message Group Partitioning ===");
+        ClientServiceProvider provider = ClientServiceProvider.loadService();
+        MessageGroupPartitioner partitioner = new MessageGroupPartitioner("order", 4);
+        int messageCount = 20;
+        CountDownLatch latch = new CountDownLatch(messageCount);
+        
+        for (int i = 1; i <= messageCount; i++) {
+            // 5 orders, 4 events each: events of the same order land in the same group
+            String orderId = "ORDER-" + (i % 5);
+            String orderJson = String.format("{\"orderId\":\"%s\",\"event\":%d}", orderId, i);
+            Message message = provider.newMessageBuilder()
+                .setTopic(FIFO_TOPIC)
+                .setKeys(orderId)
+                .setTag("fifo")
+                .setBody(orderJson.getBytes())
+                .build();
+            
+            partitioner.sendAsync(producer, message)
+                .whenComplete((sendReceipt, throwable) -> {
+                    if (throwable != null) {
+                        // 5. Handle send results and exceptions
+                        logger.error("✗ Failed to send FIFO message for {}", orderId, throwable);
+                    }
+                    latch.countDown();
+                });
+            logger.info("{} -> message group {}", orderId, partitioner.selectGroup(orderId));
+        }
+        
+        boolean completed = latch.await(10, TimeUnit.SECONDS);
+        if (!completed) {
+            logger.warn("Not all FIFO messages completed within timeout");
+        }
+        logger.info("Per-group send metrics:");
+        partitioner.logMetrics();
+        
+        // Rebalance: only keys whose ring position moves change their group
+        partitioner.setGroupCount(6);
+        for (int i = 0; i < 5; i++) {
+            String orderId = "ORDER-" + i;
+            logger.info("After rebalance: {} -> message group {}", orderId, partitioner.selectGroup(orderId));
+        }
+    }
+}
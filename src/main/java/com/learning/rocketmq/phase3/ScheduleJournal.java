@@ -0,0 +1,366 @@
+package com.learning.rocketmq.phase3;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.apache.rocketmq.client.apis.ClientServiceProvider;
+import org.apache.rocketmq.client.apis.message.Message;
+import org.apache.rocketmq.client.apis.message.MessageBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local append-only journal of pending scheduled sends
+ *
+ * Format: one JSON record per line
+ * - ADD: id, deliverAt and the message fields (body as Base64)
+ * - DONE: id of a sent or cancelled entry
+ *
+ * Durability:
+ * - Records are buffered in memory; a sync thread writes the buffer and fsyncs it
+ *   (FileChannel.force), so concurrent appends share one write and one fsync (group commit)
+ * - append() returns once its ADD record is fsynced; DONE records are not waited for,
+ *   a lost DONE only means the message is resent after recovery (at-least-once)
+ *
+ * Compaction:
+ * - On open the journal is replayed and rewritten with the pending ADD records only
+ * - While running, the sync thread rewrites it from the live pending set whenever the file
+ *   has grown past the compaction threshold and doubled since the last compaction
+ */
+class ScheduleJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ScheduleJournal.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final String OP_ADD = "ADD";
+    private static final String OP_DONE = "DONE";
+
+    private final Path file;
+    private final long compactThresholdBytes;
+    private final Supplier<Collection<PendingRecord>> livePending;
+    private final List<PendingRecord> recovered;
+    private final Thread syncer;
+
+    // Guarded by this: records not written yet, and the sequence numbers of the group commit
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long appendedSeq;
+    private long syncedSeq;
+    private IOException syncFailure;
+    private boolean running = true;
+
+    // Only touched by the sync thread (and the constructor)
+    private FileChannel channel;
+    private long compactedSize;
+
+    /**
+     * @param file journal file
+     * @param provider client service provider, to rebuild recovered messages
+     * @param compactThresholdBytes file size after which the journal is compacted while running
+     * @param livePending current pending entries, used for compaction while running
+     */
+    ScheduleJournal(Path file, ClientServiceProvider provider, long compactThresholdBytes,
+            Supplier<Collection<PendingRecord>> livePending) throws IOException {
+        this.file = file;
+        this.compactThresholdBytes = compactThresholdBytes;
+        this.livePending = livePending;
+        this.recovered = replay(provider);
+        rewrite(recovered, new byte[0]);
+        this.syncer = new Thread(this::syncLoop, "schedule-journal-sync");
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+    }
+
+    /**
+     * @return entries that were still pending when the journal was last closed
+     */
+    List<PendingRecord> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Record a new scheduled send and wait until it is fsynced.
+     */
+    void append(String id, Message message, long deliverAtMs) throws IOException {
+        byte[] record = toLine(toRecord(id, message, deliverAtMs));
+        long seq;
+        synchronized (this) {
+            checkOpen();
+            buffer.write(record, 0, record.length);
+            seq = ++appendedSeq;
+            notifyAll();
+        }
+        awaitSynced(seq);
+    }
+
+    /**
+     * Record a sent or cancelled entry. Returns without waiting for the fsync.
+     */
+    void markDone(String id) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("op", OP_DONE);
+        record.put("id", id);
+        try {
+            byte[] line = toLine(record);
+            synchronized (this) {
+                if (!running) {
+                    // Closed: the entry is resent after recovery
+                    return;
+                }
+                buffer.write(line, 0, line.length);
+                ++appendedSeq;
+                notifyAll();
+            }
+        } catch (IOException e) {
+            // Worst case the entry is resent after recovery
+            logger.error("Failed to journal completion of scheduled send {}", id, e);
+        }
+    }
+
+    private synchronized void awaitSynced(long seq) throws IOException {
+        boolean interrupted = false;
+        while (syncedSeq < seq && syncFailure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (syncedSeq < seq) {
+            throw new IOException("Schedule journal sync failed", syncFailure);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (syncFailure != null) {
+            throw new IOException("Schedule journal sync failed", syncFailure);
+        }
+        if (!running) {
+            throw new IOException("Schedule journal closed");
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            byte[] batch;
+            long batchSeq;
+            synchronized (this) {
+                while (running && appendedSeq == syncedSeq) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // close() sets running; loop re-checks
+                    }
+                }
+                if (appendedSeq == syncedSeq) {
+                    return;
+                }
+                batch = buffer.toByteArray();
+                buffer = new ByteArrayOutputStream();
+                batchSeq = appendedSeq;
+            }
+            try {
+                if (channel.size() > Math.max(compactThresholdBytes, compactedSize * 2)) {
+                    // Live pending set plus the batch in order; duplicate ADDs replay to the same entry
+                    rewrite(livePending.get(), batch);
+                } else {
+                    ByteBuffer bytes = ByteBuffer.wrap(batch);
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                    channel.force(false);
+                }
+                synchronized (this) {
+                    syncedSeq = batchSeq;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                logger.error("Failed to sync schedule journal {}", file, e);
+                synchronized (this) {
+                    syncFailure = e;
+                    running = false;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sync the remaining records and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<PendingRecord> replay(ClientServiceProvider provider) throws IOException {
+        Map<String, Map<String, Object>> pending = new LinkedHashMap<>();
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    Map<String, Object> record;
+                    try {
+                        record = OBJECT_MAPPER.readValue(line, Map.class);
+                    } catch (IOException e) {
+                        // Typically a torn last line after a crash
+                        logger.warn("Skipping unreadable schedule journal line: {}", line);
+                        continue;
+                    }
+                    String id = (String) record.get("id");
+                    if (OP_ADD.equals(record.get("op"))) {
+                        pending.put(id, record);
+                    } else {
+                        pending.remove(id);
+                    }
+                }
+            }
+        }
+        List<PendingRecord> result = new ArrayList<>(pending.size());
+        for (Map<String, Object> record : pending.values()) {
+            result.add(new PendingRecord((String) record.get("id"), fromRecord(provider, record),
+                ((Number) record.get("deliverAt")).longValue()));
+        }
+        logger.info("Recovered {} pending scheduled sends from {}", result.size(), file);
+        return result;
+    }
+
+    /**
+     * Write the pending ADD records followed by the given raw records to a new file,
+     * fsync it and atomically replace the journal, then continue appending to it.
+     */
+    private void rewrite(Collection<PendingRecord> pending, byte[] tail) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (PendingRecord record : pending) {
+                byte[] line = toLine(toRecord(record.getId(), record.getMessage(), record.getDeliverAtMs()));
+                content.write(line, 0, line.length);
+            }
+            content.write(tail, 0, tail.length);
+            ByteBuffer bytes = ByteBuffer.wrap(content.toByteArray());
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        compactedSize = channel.size();
+        logger.debug("Compacted schedule journal {} to {} bytes", file, compactedSize);
+    }
+
+    private static byte[] toLine(Map<String, Object> record) throws IOException {
+        return (OBJECT_MAPPER.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, Object> toRecord(String id, Message message, long deliverAtMs) {
+        ByteBuffer bodyBuffer = message.getBody().duplicate();
+        byte[] bodyBytes = new byte[bodyBuffer.remaining()];
+        bodyBuffer.get(bodyBytes);
+
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("op", OP_ADD);
+        record.put("id", id);
+        record.put("deliverAt", deliverAtMs);
+        record.put("topic", message.getTopic());
+        record.put("tag", message.getTag().orElse(null));
+        record.put("keys", message.getKeys());
+        record.put("messageGroup", message.getMessageGroup().orElse(null));
+        record.put("properties", message.getProperties());
+        record.put("body", Base64.getEncoder().encodeToString(bodyBytes));
+        return record;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Message fromRecord(ClientServiceProvider provider, Map<String, Object> record) {
+        MessageBuilder builder = provider.newMessageBuilder()
+            .setTopic((String) record.get("topic"))
+            .setBody(Base64.getDecoder().decode((String) record.get("body")));
+        String tag = (String) record.get("tag");
+        if (tag != null) {
+            builder.setTag(tag);
+        }
+        Collection<String> keys = (Collection<String>) record.get("keys");
+        if (keys != null && !keys.isEmpty()) {
+            builder.setKeys(keys.toArray(new String[0]));
+        }
+        String messageGroup = (String) record.get("messageGroup");
+        if (messageGroup != null) {
+            builder.setMessageGroup(messageGroup);
+        }
+        Map<String, String> properties = (Map<String, String>) record.get("properties");
+        if (properties != null) {
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                builder.addProperty(property.getKey(), property.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * A pending scheduled send, as recovered from or compacted into the journal.
+     */
+    static class PendingRecord {
+        private final String id;
+        private final Message message;
+        private final long deliverAtMs;
+
+        PendingRecord(String id, Message message, long deliverAtMs) {
+            this.id = id;
+            this.message = message;
+            this.deliverAtMs = deliverAtMs;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        Message getMessage() {
+            return message;
+        }
+
+        long getDeliverAtMs() {
+            return deliverAtMs;
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.learning.rocketmq.phase3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.client.apis.ClientServiceProvider;
+import org.apache.rocketmq.client.apis.message.Message;
+import org.apache.rocketmq.client.apis.producer.Producer;
+import org.apache.rocketmq.client.apis.producer.SendReceipt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client-side scheduled sends on top of a hierarchical {@link TimingWheel}
+ *
+ * Why:
+ * - Millions of delayed messages (retries, reminders) are too expensive as one
+ *   ScheduledExecutorService task each
+ * - The timing wheel gives O(1) schedule and cancel per message
+ *
+ * How:
+ * - One dispatcher thread advances the wheel and sends due messages via sendAsync,
+ *   admitting them batch by batch into a bounded in-flight window
+ * - Without broker delay support: messages are sent as normal messages when due
+ * - With broker delay support (brokerMaxDelay set): messages leave the client once they are
+ *   within brokerMaxDelay of their delivery time and are sent with a delivery timestamp,
+ *   so the client only holds messages the broker cannot delay yet
+ * - Optionally pending entries are journaled to a local file and recovered on start
+ * - Per entry the client only holds the wheel entry and its {@link ScheduledSend} handle;
+ *   ids and the id lookup map exist only when journaling
+ *
+ * Notes:
+ * - FIFO messages (with a message group) cannot carry a delivery timestamp,
+ *   they are always held until due and sent as normal messages
+ * - Delivery is at-least-once when journaling: a crash after a send resends the message
+ */
+public class ScheduledMessageSender implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ScheduledMessageSender.class);
+
+    private final Producer producer;
+    private final ClientServiceProvider provider;
+    private final TimingWheel<ScheduledSend> wheel;
+    private final long tickMs;
+    private final int batchSize;
+    private final long brokerMaxDelayMs;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ScheduleJournal journal;
+    // Only with a journal: cancel-by-id for recovered entries and the live set for compaction
+    private final Map<String, ScheduledSend> pending;
+    // Unfinished sends whose result future was asked for, failed on close
+    private final Set<ScheduledSend> awaited = ConcurrentHashMap.newKeySet();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+    private volatile boolean closed;
+    // Written by the dispatcher, read after it has been joined
+    private int abandonedOnClose;
+
+    private ScheduledMessageSender(Builder builder) throws IOException {
+        this.producer = builder.producer;
+        this.provider = ClientServiceProvider.loadService();
+        this.tickMs = builder.tickMs;
+        this.batchSize = builder.batchSize;
+        this.brokerMaxDelayMs = builder.brokerMaxDelay == null ? 0 : builder.brokerMaxDelay.toMillis();
+        this.maxInFlight = builder.maxInFlight;
+        this.inFlight = new Semaphore(builder.maxInFlight);
+        this.wheel = new TimingWheel<>(builder.tickMs, builder.wheelSize, System.currentTimeMillis());
+        if (builder.journalFile == null) {
+            this.pending = null;
+            this.journal = null;
+        } else {
+            this.pending = new ConcurrentHashMap<>();
+            this.journal = new ScheduleJournal(builder.journalFile, provider,
+                builder.journalCompactThresholdBytes, this::pendingRecords);
+        }
+        if (journal != null) {
+            for (ScheduleJournal.PendingRecord record : journal.getRecovered()) {
+                enqueue(record.getId(), record.getMessage(), record.getDeliverAtMs());
+            }
+        }
+        this.dispatcher = new Thread(this::dispatchLoop, "scheduled-send-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public static Builder newBuilder(Producer producer) {
+        return new Builder(producer);
+    }
+
+    /**
+     * Schedule a message to be delivered at the given time.
+     *
+     * @param message message to send
+     * @param deliverAtMs delivery time in epoch milliseconds
+     * @return handle to cancel the send or wait for its receipt
+     * @throws IOException if the entry cannot be written to the journal
+     */
+    public ScheduledSend schedule(Message message, long deliverAtMs) throws IOException {
+        if (!running) {
+            throw new IllegalStateException("ScheduledMessageSender is closed");
+        }
+        if (journal == null) {
+            return enqueue(null, message, deliverAtMs);
+        }
+        String id = UUID.randomUUID().toString();
+        ScheduledSend scheduledSend = new ScheduledSend(id, message, deliverAtMs);
+        // In the live set before the ADD record, so a concurrent compaction keeps it
+        pending.put(id, scheduledSend);
+        try {
+            journal.append(id, message, deliverAtMs);
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+        return schedule(scheduledSend);
+    }
+
+    /**
+     * Schedule a message to be delivered after a delay.
+     *
+     * @param message message to send
+     * @param delay delay from now
+     * @return handle to cancel the send or wait for its receipt
+     * @throws IOException if the entry cannot be written to the journal
+     */
+    public ScheduledSend schedule(Message message, Duration delay) throws IOException {
+        return schedule(message, System.currentTimeMillis() + delay.toMillis());
+    }
+
+    /**
+     * Cancel a scheduled send by id, e.g. an id from a previous run recovered from the journal.
+     * Only available with a journal; otherwise cancel through the {@link ScheduledSend} handle.
+     *
+     * @param id scheduled send id
+     * @return true if the send was still pending
+     */
+    public boolean cancel(String id) {
+        if (pending == null) {
+            throw new IllegalStateException("Cancel by id requires a journal");
+        }
+        ScheduledSend scheduledSend = pending.get(id);
+        return scheduledSend != null && scheduledSend.cancel();
+    }
+
+    /**
+     * @return number of sends waiting in the timing wheel
+     */
+    public int getPendingCount() {
+        return wheel.size();
+    }
+
+    private ScheduledSend enqueue(String id, Message message, long deliverAtMs) {
+        ScheduledSend scheduledSend = new ScheduledSend(id, message, deliverAtMs);
+        if (pending != null) {
+            pending.put(id, scheduledSend);
+        }
+        return schedule(scheduledSend);
+    }
+
+    private ScheduledSend schedule(ScheduledSend scheduledSend) {
+        scheduledSend.entry = wheel.schedule(scheduledSend,
+            fireAt(scheduledSend.getMessage(), scheduledSend.getDeliverAtMs()));
+        return scheduledSend;
+    }
+
+    private Collection<ScheduleJournal.PendingRecord> pendingRecords() {
+        List<ScheduleJournal.PendingRecord> records = new ArrayList<>(pending.size());
+        for (ScheduledSend scheduledSend : pending.values()) {
+            records.add(new ScheduleJournal.PendingRecord(scheduledSend.getId(),
+                scheduledSend.getMessage(), scheduledSend.getDeliverAtMs()));
+        }
+        return records;
+    }
+
+    private long fireAt(Message message, long deliverAtMs) {
+        if (brokerMaxDelayMs > 0 && !message.getMessageGroup().isPresent()) {
+            return deliverAtMs - brokerMaxDelayMs;
+        }
+        return deliverAtMs;
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            List<TimingWheel.Entry<ScheduledSend>> due = Collections.emptyList();
+            int from = 0;
+            try {
+                due = wheel.advance(tickMs);
+                for (; from < due.size(); from += batchSize) {
+                    dispatch(due.subList(from, Math.min(from + batchSize, due.size())));
+                }
+            } catch (InterruptedException e) {
+                // Closing while waiting for the in-flight window: the unsent rest is already out of the wheel
+                abandon(due.subList(from, due.size()));
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.error("Error dispatching scheduled sends", e);
+            }
+        }
+    }
+
+    /**
+     * Send one batch. The batch is admitted as a whole: it waits until the in-flight window has
+     * room for all of its messages, then sends them back to back. A burst of due messages thus
+     * goes out in waves of batchSize instead of trickling out one freed permit at a time.
+     */
+    private void dispatch(List<TimingWheel.Entry<ScheduledSend>> batch) throws InterruptedException {
+        inFlight.acquire(batch.size());
+        long now = System.currentTimeMillis();
+        for (TimingWheel.Entry<ScheduledSend> entry : batch) {
+            ScheduledSend scheduledSend = entry.getPayload();
+            try {
+                producer.sendAsync(toOutgoing(scheduledSend, now)).whenComplete((sendReceipt, throwable) -> {
+                    inFlight.release();
+                    if (throwable != null) {
+                        logger.error("✗ Failed to send scheduled message {}", scheduledSend.getId(), throwable);
+                    }
+                    complete(scheduledSend);
+                    scheduledSend.finish(sendReceipt, throwable);
+                });
+            } catch (RuntimeException e) {
+                // Copying the message or sendAsync itself threw: the entry is already out of the wheel
+                inFlight.release();
+                logger.error("✗ Failed to send scheduled message {}", scheduledSend.getId(), e);
+                complete(scheduledSend);
+                scheduledSend.finish(null, e);
+            }
+        }
+        logger.debug("Dispatched {} scheduled messages", batch.size());
+    }
+
+    /**
+     * Fail due sends that were taken out of the wheel but not sent. With a journal they are
+     * not marked done, so they are recovered on next start.
+     */
+    private void abandon(List<TimingWheel.Entry<ScheduledSend>> unsent) {
+        abandonedOnClose += unsent.size();
+        for (TimingWheel.Entry<ScheduledSend> entry : unsent) {
+            entry.getPayload().finish(null, new IllegalStateException("ScheduledMessageSender closed"));
+        }
+    }
+
+    private Message toOutgoing(ScheduledSend scheduledSend, long now) {
+        Message message = scheduledSend.getMessage();
+        // Hand the remaining delay over to the broker
+        if (brokerMaxDelayMs > 0 && !message.getMessageGroup().isPresent()
+                && scheduledSend.getDeliverAtMs() > now + tickMs) {
+            return MessageCopier.toBuilder(provider, message)
+                .setDeliveryTimestamp(scheduledSend.getDeliverAtMs())
+                .build();
+        }
+        return message;
+    }
+
+    private void complete(ScheduledSend scheduledSend) {
+        if (journal != null) {
+            // Out of the live set before the DONE record, so a concurrent compaction cannot revive it
+            pending.remove(scheduledSend.getId());
+            journal.markDone(scheduledSend.getId());
+        }
+    }
+
+    /**
+     * Stop dispatching. Pending sends stay in the journal (if any) and are recovered on next start;
+     * without a journal they are dropped. Either way their result futures fail.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        dispatcher.interrupt();
+        try {
+            dispatcher.join(tickMs * 10);
+            // Let in-flight sends finish so their completion reaches the journal
+            if (!inFlight.tryAcquire(maxInFlight, 5, TimeUnit.SECONDS)) {
+                logger.warn("Timed out waiting for in-flight scheduled sends");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int pendingCount = wheel.size() + abandonedOnClose;
+        if (pendingCount > 0) {
+            logger.warn("ScheduledMessageSender closed with {} pending sends{}", pendingCount,
+                journal != null ? " (kept in journal)" : " (dropped)");
+        }
+        // Handles asking for their result from now on fail right away
+        closed = true;
+        for (ScheduledSend scheduledSend : awaited) {
+            scheduledSend.finish(null, new IllegalStateException("ScheduledMessageSender closed"));
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Handle of one scheduled send.
+     *
+     * The result future is only created when asked for, most callers never wait on it.
+     * Only handles with a result future are tracked, so close() can fail them.
+     */
+    public class ScheduledSend {
+        private final String id;
+        private final Message message;
+        private final long deliverAtMs;
+        private volatile TimingWheel.Entry<ScheduledSend> entry;
+        // Guarded by this
+        private CompletableFuture<SendReceipt> result;
+        private boolean finished;
+        private SendReceipt receipt;
+        private Throwable failure;
+
+        private ScheduledSend(String id, Message message, long deliverAtMs) {
+            this.id = id;
+            this.message = message;
+            this.deliverAtMs = deliverAtMs;
+        }
+
+        /**
+         * @return id of the send in the journal, null without a journal
+         */
+        public String getId() {
+            return id;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+
+        public long getDeliverAtMs() {
+            return deliverAtMs;
+        }
+
+        /**
+         * @return future completed with the send receipt once the message is handed to the broker
+         */
+        public synchronized CompletableFuture<SendReceipt> getResult() {
+            if (result == null) {
+                result = new CompletableFuture<>();
+                if (finished) {
+                    settle();
+                } else {
+                    awaited.add(this);
+                    // Checked after registering, so a concurrent close() either fails it or is seen here
+                    if (closed) {
+                        finish(null, new IllegalStateException("ScheduledMessageSender closed"));
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Cancel the send if it has not been dispatched yet.
+         *
+         * @return true if the send was cancelled
+         */
+        public boolean cancel() {
+            TimingWheel.Entry<ScheduledSend> current = entry;
+            if (current == null || !current.cancel()) {
+                return false;
+            }
+            complete(this);
+            finish(null, new CancellationException("Scheduled send cancelled"));
+            return true;
+        }
+
+        private synchronized void finish(SendReceipt sendReceipt, Throwable throwable) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            receipt = sendReceipt;
+            failure = throwable;
+            if (result != null) {
+                awaited.remove(this);
+                settle();
+            }
+        }
+
+        private void settle() {
+            if (failure instanceof CancellationException) {
+                result.cancel(false);
+            } else if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(receipt);
+            }
+        }
+    }
+
+    /**
+     * Builder of {@link ScheduledMessageSender}.
+     */
+    public static class Builder {
+        private final Producer producer;
+        private long tickMs = 100;
+        private int wheelSize = 512;
+        private int batchSize = 256;
+        private int maxInFlight = 1024;
+        private Duration brokerMaxDelay;
+        private Path journalFile;
+        private long journalCompactThresholdBytes = 64L * 1024 * 1024;
+
+        private Builder(Producer producer) {
+            this.producer = producer;
+        }
+
+        /**
+         * Tick of the lowest wheel level, i.e. the scheduling precision. Default 100ms.
+         */
+        public Builder setTickMs(long tickMs) {
+            this.tickMs = tickMs;
+            return this;
+        }
+
+        /**
+         * Buckets per wheel level. Default 512 (lowest level spans 51.2s with the default tick).
+         */
+        public Builder setWheelSize(int wheelSize) {
+            this.wheelSize = wheelSize;
+            return this;
+        }
+
+        /**
+         * Due messages admitted to the in-flight window at once: a batch waits until all of its
+         * messages fit, then is sent back to back. Must not exceed maxInFlight. Default 256.
+         */
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Maximum number of sends waiting for a broker response. Default 1024.
+         */
+        public Builder setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Enable broker-side delay: messages are handed to the broker with a delivery timestamp
+         * once they are within this delay (the broker's timerMaxDelaySec, 24h by default).
+         * The topic must be a DELAY topic. Not set by default: messages are sent when due.
+         */
+        public Builder setBrokerMaxDelay(Duration brokerMaxDelay) {
+            this.brokerMaxDelay = brokerMaxDelay;
+            return this;
+        }
+
+        /**
+         * Journal pending sends to this file and recover them on start. Not set by default.
+         */
+        public Builder setJournalFile(Path journalFile) {
+            this.journalFile = journalFile;
+            return this;
+        }
+
+        /**
+         * Journal size after which it is compacted while running (and again once it has doubled
+         * since the last compaction). Default 64MB.
+         */
+        public Builder setJournalCompactThresholdBytes(long journalCompactThresholdBytes) {
+            this.journalCompactThresholdBytes = journalCompactThresholdBytes;
+            return this;
+        }
+
+        public ScheduledMessageSender build() throws IOException {
+            if (producer == null) {
+                throw new IllegalArgumentException("producer must not be null");
+            }
+            if (tickMs <= 0 || wheelSize <= 0 || batchSize <= 0 || maxInFlight <= 0) {
+                throw new IllegalArgumentException("tickMs, wheelSize, batchSize and maxInFlight must be positive");
+            }
+            if (batchSize > maxInFlight) {
+                throw new IllegalArgumentException("batchSize must not exceed maxInFlight");
+            }
+            if (journalCompactThresholdBytes <= 0) {
+                throw new IllegalArgumentException("journalCompactThresholdBytes must be positive");
+            }
+            return new ScheduledMessageSender(this);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.learning.rocketmq.phase3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel
+ *
+ * Why:
+ * - One ScheduledExecutorService task per delayed message costs a heap entry and
+ *   an O(log n) reorder per message
+ * - A timing wheel puts each entry into a bucket (doubly-linked list): O(1) insert and cancel
+ *
+ * How:
+ * - The lowest level has wheelSize buckets of tickMs each
+ * - Entries beyond the level's range go to an overflow level with tickMs * wheelSize ticks
+ * - Only non-empty buckets are kept in a DelayQueue, so the clock jumps over idle time
+ * - When a higher level bucket expires, its entries are re-inserted into lower levels
+ *
+ * Times are epoch milliseconds.
+ *
+ * @param <T> payload type
+ */
+public class TimingWheel<T> {
+    private final long tickMs;
+    private final Level root;
+    private final DelayQueue<Bucket<T>> delayQueue = new DelayQueue<>();
+    // Entries that were already due when scheduled, returned by the next advance
+    private final Queue<Entry<T>> dueNow = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // Inserts share the read lock, advancing the clock takes the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param tickMs duration of one bucket of the lowest level
+     * @param wheelSize number of buckets per level
+     * @param startMs current time
+     */
+    public TimingWheel(long tickMs, int wheelSize, long startMs) {
+        if (tickMs <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMs and wheelSize must be positive");
+        }
+        this.tickMs = tickMs;
+        this.root = new Level(tickMs, wheelSize, startMs);
+    }
+
+    /**
+     * Schedule a payload.
+     *
+     * @param payload payload returned when the entry expires
+     * @param expirationMs expiration time
+     * @return entry handle, can be used to cancel
+     */
+    public Entry<T> schedule(T payload, long expirationMs) {
+        // Round up to the next tick so entries never fire before their expiration
+        long slotMs = (expirationMs + tickMs - 1) / tickMs * tickMs;
+        Entry<T> entry = new Entry<>(payload, expirationMs, slotMs);
+        boolean added;
+        lock.readLock().lock();
+        try {
+            added = root.add(entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (!added) {
+            size.incrementAndGet();
+            dueNow.offer(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Wait up to timeoutMs for buckets to expire and return their entries.
+     *
+     * Returned entries are marked expired, so a later cancel() returns false.
+     *
+     * @param timeoutMs maximum time to wait
+     * @return expired entries, empty if none expired
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Entry<T>> advance(long timeoutMs) throws InterruptedException {
+        List<Entry<T>> expired = new ArrayList<>();
+        Entry<T> due;
+        while ((due = dueNow.poll()) != null) {
+            size.decrementAndGet();
+            if (due.markExpired()) {
+                expired.add(due);
+            }
+        }
+        Bucket<T> bucket = expired.isEmpty()
+            ? delayQueue.poll(timeoutMs, TimeUnit.MILLISECONDS)
+            : delayQueue.poll();
+        if (bucket == null) {
+            return expired;
+        }
+        lock.writeLock().lock();
+        try {
+            while (bucket != null) {
+                root.advanceClock(bucket.getExpiration());
+                bucket.flush(entry -> addOrExpire(entry, expired));
+                bucket = delayQueue.poll();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return expired;
+    }
+
+    /**
+     * @return number of scheduled, not yet expired or cancelled entries
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private void addOrExpire(Entry<T> entry, List<Entry<T>> expired) {
+        if (!root.add(entry) && entry.markExpired()) {
+            expired.add(entry);
+        }
+    }
+
+    /**
+     * One level of the hierarchy.
+     */
+    private class Level {
+        private final long tickMs;
+        private final int wheelSize;
+        private final long interval;
+        private final Bucket<T>[] buckets;
+        private long currentTime;
+        private volatile Level overflow;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Level(long tickMs, int wheelSize, long startMs) {
+            this.tickMs = tickMs;
+            this.wheelSize = wheelSize;
+            this.interval = tickMs * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket<>(size);
+            }
+            this.currentTime = startMs - (startMs % tickMs);
+        }
+
+        /**
+         * @return false if the entry is already due
+         */
+        boolean add(Entry<T> entry) {
+            if (entry.isCancelled()) {
+                // Report as handled, cancelled entries are simply dropped
+                return true;
+            }
+            long expiration = entry.slotMs;
+            if (expiration < currentTime + tickMs) {
+                return false;
+            }
+            if (expiration < currentTime + interval) {
+                long virtualId = expiration / tickMs;
+                Bucket<T> bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.add(entry);
+                // Only enqueue a bucket the first time it is used for this round
+                if (bucket.setExpiration(virtualId * tickMs)) {
+                    delayQueue.offer(bucket);
+                }
+                return true;
+            }
+            return overflow().add(entry);
+        }
+
+        void advanceClock(long timeMs) {
+            if (timeMs >= currentTime + tickMs) {
+                currentTime = timeMs - (timeMs % tickMs);
+                Level next = overflow;
+                if (next != null) {
+                    next.advanceClock(currentTime);
+                }
+            }
+        }
+
+        private Level overflow() {
+            Level next = overflow;
+            if (next == null) {
+                synchronized (this) {
+                    next = overflow;
+                    if (next == null) {
+                        next = new Level(interval, wheelSize, currentTime);
+                        overflow = next;
+                    }
+                }
+            }
+            return next;
+        }
+    }
+
+    /**
+     * A scheduled entry, linked into exactly one bucket at a time.
+     *
+     * @param <T> payload type
+     */
+    public static class Entry<T> {
+        private static final int SCHEDULED = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        // Field updater instead of an AtomicInteger per entry, entries can number in the millions
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Entry> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        private final T payload;
+        private final long expirationMs;
+        private final long slotMs;
+        private volatile int state = SCHEDULED;
+        private volatile Bucket<T> bucket;
+        private Entry<T> prev;
+        private Entry<T> next;
+
+        Entry(T payload, long expirationMs, long slotMs) {
+            this.payload = payload;
+            this.expirationMs = expirationMs;
+            this.slotMs = slotMs;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        public long getExpirationMs() {
+            return expirationMs;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        /**
+         * Cancel the entry, unlinking it from its bucket in O(1).
+         *
+         * @return true if the entry was still scheduled, false if it already expired or was cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, SCHEDULED, CANCELLED)) {
+                return false;
+            }
+            unlink();
+            return true;
+        }
+
+        private boolean markExpired() {
+            return STATE.compareAndSet(this, SCHEDULED, EXPIRED);
+        }
+
+        private void unlink() {
+            // The bucket may change while flushing re-inserts the entry, so retry
+            Bucket<T> current = bucket;
+            while (current != null) {
+                current.remove(this);
+                current = bucket;
+            }
+        }
+    }
+
+    /**
+     * Doubly-linked list of entries sharing one expiration slot.
+     */
+    private static class Bucket<T> implements Delayed {
+        // Sentinel: head.next is the first entry, head.prev the last
+        private final Entry<T> head = new Entry<>(null, -1, -1);
+        private final AtomicLong expiration = new AtomicLong(-1);
+        private final AtomicInteger size;
+
+        Bucket(AtomicInteger size) {
+            this.size = size;
+            head.next = head;
+            head.prev = head;
+        }
+
+        void add(Entry<T> entry) {
+            boolean done = false;
+            while (!done) {
+                // Unlink from a previous bucket first, outside our lock to keep lock order simple
+                entry.unlink();
+                synchronized (this) {
+                    synchronized (entry) {
+                        if (entry.bucket == null) {
+                            Entry<T> tail = head.prev;
+                            entry.next = head;
+                            entry.prev = tail;
+                            tail.next = entry;
+                            head.prev = entry;
+                            entry.bucket = this;
+                            size.incrementAndGet();
+                            done = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        synchronized boolean remove(Entry<T> entry) {
+            synchronized (entry) {
+                if (entry.bucket != this) {
+                    return false;
+                }
+                entry.next.prev = entry.prev;
+                entry.prev.next = entry.next;
+                entry.next = null;
+                entry.prev = null;
+                entry.bucket = null;
+                size.decrementAndGet();
+                return true;
+            }
+        }
+
+        synchronized void flush(Consumer<Entry<T>> consumer) {
+            Entry<T> entry = head.next;
+            while (entry != head) {
+                Entry<T> next = entry.next;
+                remove(entry);
+                consumer.accept(entry);
+                entry = next;
+            }
+            expiration.set(-1);
+        }
+
+        /**
+         * @return true if the expiration changed, i.e. the bucket must be (re)queued
+         */
+        boolean setExpiration(long expirationMs) {
+            return expiration.getAndSet(expirationMs) != expirationMs;
+        }
+
+        long getExpiration() {
+            return expiration.get();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            long delayMs = getExpiration() - System.currentTimeMillis();
+            return unit.convert(Math.max(delayMs, 0), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getExpiration(), ((Bucket<?>) other).getExpiration());
+        }
+    }
+}
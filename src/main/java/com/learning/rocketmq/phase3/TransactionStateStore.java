@@ -0,0 +1,28 @@
+package com.learning.rocketmq.phase3;
+
+import java.util.Collection;
+import java.util.Map;
+import org.apache.rocketmq.client.apis.producer.TransactionResolution;
+
+/**
+ * Lookup of local transaction outcomes, used to answer broker check-backs
+ *
+ * Typically backed by the business database: the local transaction writes its id
+ * (e.g. in an outbox or order table) in the same DB commit, so its presence means COMMIT.
+ * A failed DB commit leaves no row, so the store must also decide when a missing row
+ * means ROLLBACK, otherwise the half message is checked until the broker gives up.
+ */
+public interface TransactionStateStore {
+
+    /**
+     * Look up the outcome of several transactions in one call (e.g. one SELECT ... WHERE id IN (...)).
+     *
+     * Ids that can no longer commit must resolve to ROLLBACK, e.g. ids without a row whose
+     * half message is older than the local transaction timeout. Only ids whose local transaction
+     * may still be running should be left out (they resolve to UNKNOWN and are checked again).
+     *
+     * @param transactionIds transaction ids to resolve
+     * @return resolution per transaction id; ids that are missing resolve to UNKNOWN
+     */
+    Map<String, TransactionResolution> findStates(Collection<String> transactionIds);
+}
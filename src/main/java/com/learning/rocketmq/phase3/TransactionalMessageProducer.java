@@ -0,0 +1,373 @@
+package com.learning.rocketmq.phase3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.rocketmq.client.apis.ClientException;
+import org.apache.rocketmq.client.apis.ClientServiceProvider;
+import org.apache.rocketmq.client.apis.message.Message;
+import org.apache.rocketmq.client.apis.producer.Producer;
+import org.apache.rocketmq.client.apis.producer.ProducerBuilder;
+import org.apache.rocketmq.client.apis.producer.SendReceipt;
+import org.apache.rocketmq.client.apis.producer.Transaction;
+import org.apache.rocketmq.client.apis.producer.TransactionResolution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transactional producer: "DB commit + publish" without a per-message round-trip wait
+ *
+ * Flow:
+ * 1. The half message is sent asynchronously (invisible to consumers)
+ * 2. The local transaction runs, e.g. the DB commit recording the transaction id
+ * 3. Its outcome is queued; a flusher thread commits/rolls back queued transactions in batches
+ * 4. If the producer dies before step 3, the broker checks back; the
+ *    {@link BatchingTransactionChecker} answers from states looked up in batches
+ *    from the {@link TransactionStateStore}
+ *
+ * The transaction id travels in the {@value #TRANSACTION_ID_PROPERTY} message property.
+ */
+public class TransactionalMessageProducer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TransactionalMessageProducer.class);
+
+    public static final String TRANSACTION_ID_PROPERTY = "transactionId";
+
+    private final Producer producer;
+    private final BatchingTransactionChecker checker;
+    private final ClientServiceProvider provider;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final ExecutorService sendExecutor;
+    private final ExecutorService endExecutor;
+
+    // Half messages sent, waiting for the local transaction outcome
+    private final Map<String, Transaction> openTransactions = new ConcurrentHashMap<>();
+    private final BlockingQueue<EndRequest> endRequests = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * Local transaction executed after the half message is stored by the broker.
+     */
+    @FunctionalInterface
+    public interface LocalTransaction {
+        /**
+         * @param halfReceipt receipt of the half message
+         * @return COMMIT, ROLLBACK, or UNKNOWN to leave the decision to the check-back
+         * @throws Exception any exception rolls the transaction back
+         */
+        TransactionResolution execute(SendReceipt halfReceipt) throws Exception;
+    }
+
+    private TransactionalMessageProducer(Builder builder) throws ClientException {
+        this.checker = new BatchingTransactionChecker(builder.store, TRANSACTION_ID_PROPERTY,
+            builder.batchSize, builder.checkBatchWindow, builder.maxCachedCheckStates);
+        try {
+            this.producer = builder.producerBuilder
+                .setTransactionChecker(checker)
+                .build();
+        } catch (ClientException e) {
+            checker.close();
+            throw e;
+        }
+        this.provider = ClientServiceProvider.loadService();
+        this.batchSize = builder.batchSize;
+        this.flushIntervalMs = builder.flushInterval.toMillis();
+        this.sendExecutor = Executors.newFixedThreadPool(builder.sendThreads, namedThreads("transaction-send"));
+        this.endExecutor = Executors.newFixedThreadPool(builder.endThreads, namedThreads("transaction-end"));
+        this.flusher = new Thread(this::flushLoop, "transaction-end-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @param producerBuilder producer builder with client configuration and topics already set
+     * @param store store answering broker check-backs
+     */
+    public static Builder newBuilder(ProducerBuilder producerBuilder, TransactionStateStore store) {
+        return new Builder(producerBuilder, store);
+    }
+
+    /**
+     * Send a half message, run the local transaction and queue its outcome.
+     *
+     * @param message message to publish when the local transaction commits
+     * @param transactionId business transaction id, also what the store is looked up by
+     * @param localTransaction local transaction, e.g. the DB commit
+     * @return future of the half message receipt, completed once the outcome is queued
+     */
+    public CompletableFuture<SendReceipt> send(Message message, String transactionId,
+            LocalTransaction localTransaction) {
+        Message halfMessage = toHalfMessage(message, transactionId);
+        // Half send and local transaction in one task: a second stage would be rejected
+        // once close() shuts the executor down
+        return CompletableFuture.supplyAsync(() -> {
+            SendReceipt halfReceipt = sendHalf(halfMessage, transactionId);
+            TransactionResolution resolution;
+            try {
+                resolution = localTransaction.execute(halfReceipt);
+            } catch (Exception e) {
+                logger.error("Local transaction {} failed, rolling back", transactionId, e);
+                resolution = TransactionResolution.ROLLBACK;
+            }
+            end(transactionId, resolution);
+            return halfReceipt;
+        }, sendExecutor);
+    }
+
+    /**
+     * Send a half message asynchronously. Call {@link #commit} or {@link #rollback} afterwards.
+     *
+     * @param message message to publish when committed
+     * @param transactionId business transaction id
+     * @return future of the half message receipt
+     */
+    public CompletableFuture<SendReceipt> sendHalfAsync(Message message, String transactionId) {
+        Message halfMessage = toHalfMessage(message, transactionId);
+        return CompletableFuture.supplyAsync(() -> sendHalf(halfMessage, transactionId), sendExecutor);
+    }
+
+    private Message toHalfMessage(Message message, String transactionId) {
+        return MessageCopier.toBuilder(provider, message)
+            .addProperty(TRANSACTION_ID_PROPERTY, transactionId)
+            .build();
+    }
+
+    private SendReceipt sendHalf(Message halfMessage, String transactionId) {
+        try {
+            Transaction transaction = producer.beginTransaction();
+            SendReceipt halfReceipt = producer.send(halfMessage, transaction);
+            openTransactions.put(transactionId, transaction);
+            return halfReceipt;
+        } catch (ClientException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Queue a commit. Returns immediately; the commit is sent with the next batch.
+     *
+     * @param transactionId transaction id of a sent half message
+     */
+    public void commit(String transactionId) {
+        end(transactionId, TransactionResolution.COMMIT);
+    }
+
+    /**
+     * Queue a rollback. Returns immediately; the rollback is sent with the next batch.
+     *
+     * @param transactionId transaction id of a sent half message
+     */
+    public void rollback(String transactionId) {
+        end(transactionId, TransactionResolution.ROLLBACK);
+    }
+
+    private void end(String transactionId, TransactionResolution resolution) {
+        Transaction transaction = openTransactions.remove(transactionId);
+        if (transaction == null) {
+            throw new IllegalStateException("No open transaction: " + transactionId);
+        }
+        if (resolution == TransactionResolution.UNKNOWN) {
+            // Left to the broker check-back
+            logger.info("Transaction {} outcome unknown, leaving it to the check-back", transactionId);
+            return;
+        }
+        endRequests.offer(new EndRequest(transactionId, transaction, resolution));
+    }
+
+    private void flushLoop() {
+        List<EndRequest> batch = new ArrayList<>(batchSize);
+        while (running || !endRequests.isEmpty()) {
+            try {
+                EndRequest first = endRequests.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                endRequests.drainTo(batch, batchSize - 1);
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                // Keep flushing; transactions of the failed batch are resolved by the check-back
+                logger.error("Failed to flush {} transaction ends", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * End a batch of transactions in parallel on the end executor and wait for the whole batch,
+     * which bounds the number of outstanding end RPCs to one batch.
+     */
+    private void flush(List<EndRequest> batch) {
+        AtomicInteger failures = new AtomicInteger();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(batch.size());
+        for (EndRequest request : batch) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    if (request.resolution == TransactionResolution.COMMIT) {
+                        request.transaction.commit();
+                    } else {
+                        request.transaction.rollback();
+                    }
+                } catch (ClientException | RuntimeException e) {
+                    // The broker check-back will resolve it from the store
+                    failures.incrementAndGet();
+                    logger.error("Failed to {} transaction {}", request.resolution, request.transactionId, e);
+                }
+            }, endExecutor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        logger.info("Ended {} transactions in one batch ({} failed)", batch.size(), failures.get());
+    }
+
+    /**
+     * Finish in-flight sends and local transactions, flush queued commits/rollbacks and close
+     * the producer. Open transactions are left to the broker check-back.
+     */
+    @Override
+    public void close() throws IOException {
+        // Sends first: running local transactions still queue their outcome
+        sendExecutor.shutdown();
+        awaitTermination(sendExecutor);
+        // Then the flusher, which drains the queue before it exits
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        endExecutor.shutdown();
+        awaitTermination(endExecutor);
+        if (!openTransactions.isEmpty()) {
+            logger.warn("Closing with {} open transactions, left to the broker check-back", openTransactions.size());
+        }
+        checker.close();
+        producer.close();
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class EndRequest {
+        private final String transactionId;
+        private final Transaction transaction;
+        private final TransactionResolution resolution;
+
+        EndRequest(String transactionId, Transaction transaction, TransactionResolution resolution) {
+            this.transactionId = transactionId;
+            this.transaction = transaction;
+            this.resolution = resolution;
+        }
+    }
+
+    /**
+     * Builder of {@link TransactionalMessageProducer}.
+     */
+    public static class Builder {
+        private final ProducerBuilder producerBuilder;
+        private final TransactionStateStore store;
+        private int batchSize = 100;
+        private Duration flushInterval = Duration.ofMillis(20);
+        private Duration checkBatchWindow = Duration.ofMillis(50);
+        private int maxCachedCheckStates = 100_000;
+        private int sendThreads = 8;
+        private int endThreads = 4;
+
+        private Builder(ProducerBuilder producerBuilder, TransactionStateStore store) {
+            this.producerBuilder = producerBuilder;
+            this.store = store;
+        }
+
+        /**
+         * Maximum commits/rollbacks per batch, also maximum ids per check-back lookup. Default 100.
+         */
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * How long the flusher waits for the first queued commit/rollback. Default 20ms.
+         */
+        public Builder setFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        /**
+         * How long check-backs are collected before one store lookup. Default 50ms.
+         */
+        public Builder setCheckBatchWindow(Duration checkBatchWindow) {
+            this.checkBatchWindow = checkBatchWindow;
+            return this;
+        }
+
+        /**
+         * Maximum looked-up transaction states kept until the broker checks them again. Default 100000.
+         */
+        public Builder setMaxCachedCheckStates(int maxCachedCheckStates) {
+            this.maxCachedCheckStates = maxCachedCheckStates;
+            return this;
+        }
+
+        /**
+         * Threads sending half messages and running local transactions. Default 8.
+         */
+        public Builder setSendThreads(int sendThreads) {
+            this.sendThreads = sendThreads;
+            return this;
+        }
+
+        /**
+         * Threads sending the commits/rollbacks of a batch in parallel. Default 4.
+         */
+        public Builder setEndThreads(int endThreads) {
+            this.endThreads = endThreads;
+            return this;
+        }
+
+        public TransactionalMessageProducer build() throws ClientException {
+            if (producerBuilder == null || store == null) {
+                throw new IllegalArgumentException("producerBuilder and store must not be null");
+            }
+            if (batchSize <= 0 || sendThreads <= 0 || endThreads <= 0) {
+                throw new IllegalArgumentException("batchSize, sendThreads and endThreads must be positive");
+            }
+            return new TransactionalMessageProducer(this);
+        }
+    }
+}
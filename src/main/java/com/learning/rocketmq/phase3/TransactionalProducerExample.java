@@ -0,0 +1,94 @@
+package com.learning.rocketmq.phase3;
+
+import com.learning.rocketmq.util.RocketMQConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.rocketmq.client.apis.ClientServiceProvider;
+import org.apache.rocketmq.client.apis.message.Message;
+import org.apache.rocketmq.client.apis.producer.SendReceipt;
+import org.apache.rocketmq.client.apis.producer.TransactionResolution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Phase 3.3: Transaction Messages Example
+ *
+ * Learning objectives:
+ * 1. Send half messages asynchronously
+ * 2. Execute the local transaction (DB commit) and commit/rollback in batches
+ * 3. Answer broker check-backs with batched lookups against a state store
+ *
+ * The topic must be a TRANSACTION topic, e.g.:
+ * docker exec -it rmqbroker sh mqadmin updatetopic -t TransactionTopic -c DefaultCluster -a +message.type=TRANSACTION
+ */
+public class TransactionalProducerExample {
+    private static final Logger logger = LoggerFactory.getLogger(TransactionalProducerExample.class);
+    private static final String TOPIC = "TransactionTopic";
+
+    public static void main(String[] args) {
+        TransactionalMessageProducer producer = null;
+        try {
+            ClientServiceProvider provider = ClientServiceProvider.loadService();
+            // Stands in for the order database
+            InMemoryTransactionStateStore orderDatabase = new InMemoryTransactionStateStore();
+
+            // Built on the normal Producer builder; the transaction checker is added by the wrapper
+            producer = TransactionalMessageProducer.newBuilder(
+                    provider.newProducerBuilder()
+                        .setTopics(TOPIC)
+                        .setClientConfiguration(RocketMQConfig.getClientConfiguration()),
+                    orderDatabase)
+                .setBatchSize(100)
+                .build();
+
+            List<CompletableFuture<SendReceipt>> results = new ArrayList<>();
+            for (int i = 1; i <= 10; i++) {
+                String orderId = "ORDER-" + i;
+                String orderJson = String.format("{\"orderId\":\"%s\",\"amount\":%d}", orderId, i * 10);
+                Message message = provider.newMessageBuilder()
+                    .setTopic(TOPIC)
+                    .setKeys(orderId)
+                    .setTag("order-created")
+                    .setBody(orderJson.getBytes())
+                    .build();
+
+                final int orderNum = i;
+                results.add(producer.send(message, orderId, halfReceipt -> {
+                    // Local transaction: the DB commit records the order id
+                    if (orderNum % 5 == 0) {
+                        // Simulate a failed DB commit -> the half message is rolled back
+                        orderDatabase.record(orderId, TransactionResolution.ROLLBACK);
+                        return TransactionResolution.ROLLBACK;
+                    }
+                    orderDatabase.record(orderId, TransactionResolution.COMMIT);
+                    return TransactionResolution.COMMIT;
+                }).whenComplete((halfReceipt, throwable) -> {
+                    if (throwable != null) {
+                        logger.error("✗ Transaction for {} failed", orderId, throwable);
+                    } else {
+                        logger.info("✓ Half message for {} sent, MessageId: {}", orderId, halfReceipt.getMessageId());
+                    }
+                }));
+            }
+
+            // Wait until all outcomes are queued; the flusher commits/rolls back in batches
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0]))
+                .exceptionally(throwable -> null)
+                .join();
+            Thread.sleep(2000);
+
+        } catch (Exception e) {
+            logger.error("Error in TransactionalProducerExample", e);
+        } finally {
+            if (producer != null) {
+                try {
+                    producer.close();
+                    logger.info("Producer closed successfully");
+                } catch (Exception e) {
+                    logger.error("Error closing producer", e);
+                }
+            }
+        }
+    }
+}